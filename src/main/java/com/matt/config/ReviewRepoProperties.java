@@ -0,0 +1,29 @@
+package com.matt.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Repos the service is allowed to touch. Requests only ever name a repo id,
+ * never a filesystem path.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "review")
+public class ReviewRepoProperties {
+
+    /** repo id -> full path to the repo where the .git is located */
+    private Map<String, String> repos = new LinkedHashMap<>();
+
+    /** expected in the {@code X-Gitlab-Token} header of webhook calls, webhooks are refused while empty */
+    private String webhookSecret = "";
+
+    public Optional<String> pathOf(String repoId) {
+        return Optional.ofNullable(repoId).map(repos::get);
+    }
+}
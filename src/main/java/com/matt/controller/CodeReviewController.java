@@ -1,12 +1,20 @@
 package com.matt.controller;
 
+import com.matt.config.ReviewRepoProperties;
+import com.matt.service.CodeBlockDeduplicator;
 import com.matt.service.GitService;
 import com.matt.service.GlmLLMService;
+import com.matt.service.LlmCallScheduler;
+import com.matt.service.PrewarmService;
+import com.matt.service.ReviewPayload;
 import lombok.AllArgsConstructor;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
 
@@ -16,14 +24,30 @@ import java.io.IOException;
 public class CodeReviewController {
     private final GitService gitService;
     private final GlmLLMService glmLLMService;
+    private final CodeBlockDeduplicator deduplicator;
+    private final ReviewRepoProperties repoProperties;
+    private final PrewarmService prewarmService;
 
-    private final static String REPO_PATH = "C:\\code\\projs\\coinw\\matt-gbg";
+    private final static String REPO = "matt-gbg";
     private final static String TARGET_BRANCH = "main";
     private final static String SOURCE_BRANCH = "20260202-mr_1-matt";
 
+    /**
+     * @param repo     id under {@code review.repos}
+     * @param priority BATCH for scripted / bulk reviews, they yield to reviews someone is waiting on
+     */
     @GetMapping
-    public String codeReview() throws GitAPIException, IOException {
-        String changes =  gitService.process(REPO_PATH, TARGET_BRANCH, SOURCE_BRANCH);
-        return glmLLMService.review(changes);
+    public String codeReview(@RequestParam(defaultValue = REPO) String repo,
+                             @RequestParam(defaultValue = TARGET_BRANCH) String targetBranch,
+                             @RequestParam(defaultValue = SOURCE_BRANCH) String sourceBranch,
+                             @RequestParam(defaultValue = "INTERACTIVE") LlmCallScheduler.Priority priority)
+            throws GitAPIException, IOException {
+        String repoPath = repoProperties.pathOf(repo)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown repo: " + repo));
+
+        boolean fetchFirst = prewarmService.hasUnfetchedPush(repoPath, targetBranch, sourceBranch);
+        ReviewPayload changes = gitService.process(repoPath, targetBranch, sourceBranch, fetchFirst);
+        String result = glmLLMService.review(repo, priority, changes.getJson());
+        return deduplicator.fanOut(result, changes);
     }
 }
@@ -0,0 +1,24 @@
+package com.matt.controller;
+
+import com.matt.service.LlmCallScheduler;
+import lombok.AllArgsConstructor;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RequestMapping("llm-scheduler")
+@RestController
+@AllArgsConstructor
+public class LlmSchedulerController {
+    private final LlmCallScheduler scheduler;
+
+    /**
+     * Queue depth, wait times, in-flight calls and the current concurrency limit.
+     */
+    @GetMapping
+    public Map<String, Object> stats() {
+        return scheduler.stats();
+    }
+}
@@ -0,0 +1,70 @@
+package com.matt.controller;
+
+import com.matt.config.ReviewRepoProperties;
+import com.matt.service.PrewarmService;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+/**
+ * Push / MR-update hook. Only queues pre-warming, the review itself is
+ * still requested through {@code GET /code-review}.
+ *
+ * curl -X POST localhost:8080/webhook/push -H 'Content-Type: application/json' -H 'X-Gitlab-Token: <secret>' \
+ *      -d '{"repo":"matt-gbg","targetBranch":"main","sourceBranch":"feature/mr-123"}'
+ */
+@Slf4j
+@RequestMapping("webhook")
+@RestController
+@AllArgsConstructor
+public class WebhookController {
+    private final PrewarmService prewarmService;
+    private final ReviewRepoProperties repoProperties;
+
+    @PostMapping("push")
+    public ResponseEntity<String> push(@RequestHeader(value = "X-Gitlab-Token", required = false) String token,
+                                       @RequestBody PushEvent event) {
+        if (!isAuthorized(token)) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("invalid token");
+        }
+        if (isBlank(event.getTargetBranch()) || isBlank(event.getSourceBranch())) {
+            return ResponseEntity.badRequest().body("repo, targetBranch and sourceBranch are required");
+        }
+        Optional<String> repoPath = repoProperties.pathOf(event.getRepo());
+        if (repoPath.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("unknown repo");
+        }
+
+        boolean queued = prewarmService.enqueue(repoPath.get(), event.getTargetBranch(), event.getSourceBranch());
+        return ResponseEntity.accepted().body(queued ? "queued" : "skipped");
+    }
+
+    private boolean isAuthorized(String token) {
+        String secret = repoProperties.getWebhookSecret();
+        if (isBlank(secret)) {
+            log.warn("review.webhook-secret is not set, refusing webhook call");
+            return false;
+        }
+        return token != null && MessageDigest.isEqual(
+                secret.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isBlank(String s) {
+        return s == null || s.isBlank();
+    }
+
+    @Data
+    public static class PushEvent {
+        /** id under {@code review.repos} */
+        private String repo;
+        private String targetBranch;
+        private String sourceBranch;
+    }
+}
@@ -0,0 +1,198 @@
+package com.matt.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mass refactors (logger swap, same annotation everywhere...) produce the same
+ * block in many files. Only one representative per group is sent to the LLM
+ * and its issues are copied back to every file of the group.
+ *
+ * Fingerprint = block type + code with whitespace collapsed and the enclosing
+ * type name replaced, optionally with string / number literals replaced too.
+ */
+@Slf4j
+@Service
+public class CodeBlockDeduplicator {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final Pattern CODE_FENCE = Pattern.compile("^```[\\w-]*\\s*|\\s*```$");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern STRING_LITERAL = Pattern.compile("\"(?:\\\\.|[^\"\\\\])*\"");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d[\\d_]*(?:\\.\\d+)?[lLfFdD]?\\b");
+    /** issue text that may name the representative's type */
+    private static final List<String> RENAMED_FIELDS = List.of("summary", "location", "message", "suggestion");
+    private static final List<String> SEVERITIES = List.of("critical", "high", "medium", "low");
+
+    @Value("${review.dedup.normalize-literals:false}")
+    private boolean normalizeLiterals;
+
+    public ReviewPayload build(List<CodeBlock> blocks) throws JsonProcessingException {
+        Map<String, List<CodeBlock>> byFingerprint = new LinkedHashMap<>();
+        for (CodeBlock block : blocks) {
+            byFingerprint.computeIfAbsent(fingerprint(block), k -> new ArrayList<>()).add(block);
+        }
+
+        Map<String, List<CodeBlock>> groups = new LinkedHashMap<>();
+        Map<String, List<Map<String, Object>>> codeByFile = new LinkedHashMap<>();
+        for (List<CodeBlock> group : byFingerprint.values()) {
+            String id = "b" + (groups.size() + 1);
+            groups.put(id, group);
+
+            CodeBlock representative = group.get(0);
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("id", id);
+            entry.put("type", representative.type());
+            if (representative.name() != null) {
+                entry.put("name", representative.name());
+            }
+            entry.put("code", representative.code());
+            codeByFile.computeIfAbsent(representative.file(), k -> new ArrayList<>()).add(entry);
+        }
+
+        if (groups.size() < blocks.size()) {
+            log.info("Deduplicated {} code blocks into {} for LLM review", blocks.size(), groups.size());
+        }
+
+        List<Map<String, Object>> payload = new ArrayList<>();
+        codeByFile.forEach((file, code) -> payload.add(Map.of("file", file, "code", code)));
+        return new ReviewPayload(OBJECT_MAPPER.writeValueAsString(payload), groups);
+    }
+
+    /**
+     * Copies every issue reported on a representative block to the other blocks
+     * of its group, with their own file and enclosing type, and recounts the summary.
+     * Issues are matched to a group by their "block" id, or by file, name and type
+     * when the model left it out. The LLM result is returned unchanged if it is
+     * not the expected JSON.
+     */
+    public String fanOut(String llmResult, ReviewPayload payload) {
+        if (payload.getGroups().values().stream().allMatch(g -> g.size() == 1)) {
+            return llmResult;
+        }
+
+        JsonNode root;
+        try {
+            root = OBJECT_MAPPER.readTree(CODE_FENCE.matcher(llmResult.trim()).replaceAll(""));
+        } catch (JsonProcessingException e) {
+            log.warn("LLM result is not valid JSON, duplicates are not fanned out");
+            return llmResult;
+        }
+        if (!(root instanceof ObjectNode result) || !(root.get("issues") instanceof ArrayNode issues)) {
+            return llmResult;
+        }
+
+        ArrayNode fannedOut = OBJECT_MAPPER.createArrayNode();
+        for (JsonNode issue : issues) {
+            fannedOut.add(issue);
+            List<CodeBlock> group = findGroup(issue, payload.getGroups());
+            if (group == null || group.size() == 1 || !(issue instanceof ObjectNode)) {
+                continue;
+            }
+
+            CodeBlock representative = group.get(0);
+            for (CodeBlock member : group.subList(1, group.size())) {
+                ObjectNode copy = ((ObjectNode) issue).deepCopy();
+                copy.put("file", member.file());
+                for (String field : RENAMED_FIELDS) {
+                    if (copy.hasNonNull(field)) {
+                        copy.put(field, renameOwner(copy.get(field).asText(), representative.owner(), member.owner()));
+                    }
+                }
+                fannedOut.add(copy);
+            }
+        }
+        result.set("issues", fannedOut);
+
+        ObjectNode summary = OBJECT_MAPPER.createObjectNode();
+        SEVERITIES.forEach(s -> summary.put(s, 0));
+        for (JsonNode issue : fannedOut) {
+            String severity = issue.path("severity").asText("");
+            if (summary.has(severity)) {
+                summary.put(severity, summary.get(severity).asInt() + 1);
+            }
+        }
+        result.set("summary", summary);
+
+        try {
+            return OBJECT_MAPPER.writeValueAsString(result);
+        } catch (JsonProcessingException e) {
+            return llmResult;
+        }
+    }
+
+    private List<CodeBlock> findGroup(JsonNode issue, Map<String, List<CodeBlock>> groups) {
+        String id = issue.path("block").asText("");
+        List<CodeBlock> group = groups.get(id);
+        if (group != null) {
+            return group;
+        }
+        log.warn("LLM issue has {} block id '{}', matching it by file: {}",
+                id.isEmpty() ? "no" : "unknown", id, issue.path("summary").asText(""));
+
+        String file = issue.path("file").asText("");
+        String location = issue.path("location").asText("");
+        List<List<CodeBlock>> candidates = groups.values().stream()
+                .filter(g -> g.get(0).file().equals(file))
+                .toList();
+        candidates = narrow(candidates, b -> b.name() != null && location.contains(b.name()));
+        candidates = narrow(candidates, b -> location.toLowerCase().contains(b.type().replace("class-", "")));
+        if (candidates.size() != 1) {
+            log.warn("Cannot match LLM issue to a single code block in '{}' ({} candidates), not fanned out",
+                    file, candidates.size());
+            return null;
+        }
+        return candidates.get(0);
+    }
+
+    /**
+     * Keeps the groups whose representative matches, or all of them if none does.
+     */
+    private List<List<CodeBlock>> narrow(List<List<CodeBlock>> candidates, Predicate<CodeBlock> match) {
+        List<List<CodeBlock>> narrowed = candidates.stream().filter(g -> match.test(g.get(0))).toList();
+        return narrowed.isEmpty() ? candidates : narrowed;
+    }
+
+    private String fingerprint(CodeBlock block) {
+        String code = block.code();
+        if (block.owner() != null) {
+            code = ownerPattern(block.owner()).matcher(code).replaceAll("\\$TYPE");
+        }
+        if (normalizeLiterals) {
+            code = STRING_LITERAL.matcher(code).replaceAll("\\$STR");
+            code = NUMBER_LITERAL.matcher(code).replaceAll("\\$NUM");
+        }
+        return block.type() + "|" + WHITESPACE.matcher(code).replaceAll(" ").trim();
+    }
+
+    private String renameOwner(String text, String from, String to) {
+        if (from == null || to == null || from.equals(to)) {
+            return text;
+        }
+        return ownerPattern(from).matcher(text).replaceAll(Matcher.quoteReplacement(to));
+    }
+
+    private Pattern ownerPattern(String owner) {
+        return Pattern.compile("\\b" + Pattern.quote(owner) + "\\b");
+    }
+
+    /**
+     * @param type  method, field, import, class-annotation
+     * @param name  method name, null for other types
+     * @param owner simple name of the enclosing type, null for imports
+     */
+    public record CodeBlock(String file, String type, String name, String owner, String code) {
+    }
+}
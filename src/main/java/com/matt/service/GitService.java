@@ -1,47 +1,260 @@
 package com.matt.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.javaparser.JavaParser;
 import com.github.javaparser.ParseResult;
 import com.github.javaparser.Range;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
 import com.github.javaparser.ast.body.FieldDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.matt.service.CodeBlockDeduplicator.CodeBlock;
+import lombok.RequiredArgsConstructor;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.*;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 @Service
+@RequiredArgsConstructor
 public class GitService {
 
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-
     private static final List<String> SKIP_PREFIXES = List.of("diff ", "index ", "--- ", "+++ ", "\\ No newline");
 
-    private static final String FIELD_FILE = "file";
-    private static final String FIELD_CODE = "code";
+    private static final int PAYLOAD_CACHE_SIZE = 256;
+    private static final long YIELD_INTERVAL_MS = 200;
+    /** a review stops waiting for someone else's computation after this and does it itself */
+    private static final long JOIN_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Review payloads keyed by repo + target commit + source commit.
+     * Filled by {@link #prewarm} on push events and by regular reviews.
+     */
+    private final Map<String, ReviewPayload> payloadCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, ReviewPayload>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ReviewPayload> eldest) {
+                    return size() > PAYLOAD_CACHE_SIZE;
+                }
+            });
+
+    /** Payloads being computed, a review for the same commit pair joins instead of redoing the work. */
+    private final Map<String, CompletableFuture<ReviewPayload>> inProgress = new ConcurrentHashMap<>();
+
+    /** Keys a review is waiting on, their pre-warm must not yield. */
+    private final Set<String> awaited = ConcurrentHashMap.newKeySet();
+
+    /** One fetch at a time per repo, concurrent fetches fight over ref locks. */
+    private final Map<String, ReentrantLock> fetchLocks = new ConcurrentHashMap<>();
+
+    /** Repos whose fetch lock is held by a pre-warm, reviews never wait for those. */
+    private final Set<String> prewarmFetches = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger activeReviews = new AtomicInteger();
+
+    private final CodeBlockDeduplicator deduplicator;
+
+    /**
+     * Looks the payload up using the origin refs as last fetched, the push webhook keeps
+     * those current, and only fetches on a miss.
+     *
+     * @param fetchFirst a push for this pair has not been fetched yet, skip the cache lookup
+     */
+    public ReviewPayload process(String repoPath, String targetBranch, String sourceBranch, boolean fetchFirst)
+            throws IOException, GitAPIException {
+
+        activeReviews.incrementAndGet();
+        try {
+            ReviewPayload result = loadPayload(repoPath, targetBranch, sourceBranch, false, fetchFirst);
+            log.info("Result: {}", result.getJson());
+            return result;
+        } finally {
+            activeReviews.decrementAndGet();
+        }
+    }
+
+    /**
+     * Same work as {@link #process} but only fills the payload cache,
+     * so the next review of this commit pair goes straight to the LLM.
+     * Pauses between files while reviews are running.
+     */
+    public void prewarm(String repoPath, String targetBranch, String sourceBranch)
+            throws IOException, GitAPIException {
+        loadPayload(repoPath, targetBranch, sourceBranch, true, true);
+    }
 
-    public String process(String repoPath, String targetBranch, String sourceBranch)
+    /**
+     * Pre-warming checks this to yield to reviews someone is waiting on.
+     */
+    public boolean hasActiveReviews() {
+        return activeReviews.get() > 0;
+    }
+
+    /**
+     * @param background pre-warm: yields to reviews and returns null if the pair is already being computed
+     */
+    private ReviewPayload loadPayload(String repoPath, String targetBranch, String sourceBranch,
+                                      boolean background, boolean fetchFirst)
             throws IOException, GitAPIException {
 
+        // same repo spelled differently must hit the same cache entry
+        repoPath = Path.of(repoPath).toAbsolutePath().normalize().toString();
+        if (background) {
+            yieldToReviews(null);
+        }
+
         Repository repo = openExistingRepo(repoPath);
         try (Git git = new Git(repo)) {
+            if (!fetchFirst) {
+                ReviewPayload cached = cachedPayload(repo, repoPath, targetBranch, sourceBranch);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            fetch(git, repoPath, background);
+            ObjectId oldCommit = resolveCommit(repo, targetBranch);
+            ObjectId newCommit = resolveCommit(repo, sourceBranch);
+            String key = repoPath + ":" + oldCommit.name() + ".." + newCommit.name();
+
+            ReviewPayload cached = payloadCache.get(key);
+            if (cached != null) {
+                log.info("Using pre-warmed payload for {}", key);
+                return cached;
+            }
+
+            CompletableFuture<ReviewPayload> future = new CompletableFuture<>();
+            CompletableFuture<ReviewPayload> running = inProgress.putIfAbsent(key, future);
+            if (running == null) {
+                return computePayload(repo, key, oldCommit, newCommit, background, future);
+            }
+            if (background) {
+                log.info("Payload for {} is already being computed", key);
+                return null;
+            }
+
+            awaited.add(key);
+            log.info("Joining in-progress payload computation for {}", key);
+            try {
+                return running.get(JOIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException | CancellationException e) {
+                log.warn("In-progress payload computation for {} did not finish, computing it here", key, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for payload of " + key);
+            } finally {
+                awaited.remove(key);
+            }
+            // not registered in inProgress, the stuck computation keeps its entry until it ends
+            return computePayload(repo, key, oldCommit, newCommit, false, new CompletableFuture<>());
+        }
+    }
+
+    private ReviewPayload cachedPayload(Repository repo, String repoPath, String targetBranch, String sourceBranch) {
+        try {
+            String key = repoPath + ":" + resolveCommit(repo, targetBranch).name()
+                    + ".." + resolveCommit(repo, sourceBranch).name();
+            ReviewPayload cached = payloadCache.get(key);
+            if (cached != null) {
+                log.info("Using pre-warmed payload for {} without fetching", key);
+            }
+            return cached;
+        } catch (IOException e) {
+            // branch not fetched yet
+            return null;
+        }
+    }
+
+    /**
+     * Pre-warms take the repo's fetch lock. A review waits for another review's fetch,
+     * but fetches on its own rather than queue behind a pre-warm.
+     */
+    private void fetch(Git git, String repoPath, boolean background) throws GitAPIException, IOException {
+        ReentrantLock fetchLock = fetchLocks.computeIfAbsent(repoPath, k -> new ReentrantLock());
+        try {
+            if (background) {
+                fetchLock.lockInterruptibly();
+                prewarmFetches.add(repoPath);
+            } else {
+                while (!fetchLock.tryLock(YIELD_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    if (prewarmFetches.contains(repoPath)) {
+                        log.info("Pre-warm is fetching {}, fetching without waiting for it", repoPath);
+                        git.fetch().call();
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to fetch " + repoPath);
+        }
+
+        try {
             git.fetch().call();
-            List<FileDiff> diffs = gitDiff(repo, targetBranch, sourceBranch);
-            String result = prepareCodeForLLMReview(repoPath, diffs);
-            log.info("Result: {}", result);
+        } finally {
+            if (background) {
+                prewarmFetches.remove(repoPath);
+            }
+            fetchLock.unlock();
+        }
+    }
+
+    private ReviewPayload computePayload(Repository repo, String key, ObjectId oldCommit, ObjectId newCommit,
+                                         boolean background, CompletableFuture<ReviewPayload> future)
+            throws IOException {
+        try {
+            List<FileDiff> diffs = gitDiff(repo, oldCommit, newCommit);
+            ReviewPayload result = prepareCodeForLLMReview(repo, newCommit, diffs, background ? key : null);
+            payloadCache.put(key, result);
+            future.complete(result);
             return result;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Errors (StackOverflowError from the parser, OOM) must not leave joiners hanging
+            if (!future.isDone()) {
+                future.completeExceptionally(new IllegalStateException("Payload computation for " + key + " aborted"));
+            }
+            inProgress.remove(key, future);
+        }
+    }
+
+    /**
+     * Blocks a pre-warm while reviews are running, unless a review is waiting for {@code key} itself.
+     */
+    private void yieldToReviews(String key) throws InterruptedIOException {
+        try {
+            while (hasActiveReviews() && (key == null || !awaited.contains(key))) {
+                Thread.sleep(YIELD_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while yielding to reviews");
         }
     }
 
@@ -54,9 +267,39 @@ public class GitService {
                 .build();
     }
 
-    private List<FileDiff> gitDiff(Repository repo, String targetBranch, String sourceBranch) throws IOException {
-        ObjectId oldTree = repo.resolve(targetBranch + "^{tree}");
-        ObjectId newTree = repo.resolve(sourceBranch + "^{tree}");
+    /**
+     * Prefers origin/branch, which the fetch just updated, over the local branch which it does not move.
+     */
+    private ObjectId resolveCommit(Repository repo, String branch) throws IOException {
+        ObjectId commit = repo.resolve(Constants.R_REMOTES + "origin/" + branch + "^{commit}");
+        if (commit == null) {
+            commit = repo.resolve(branch + "^{commit}");
+        }
+        if (commit == null) {
+            throw new IOException("Cannot resolve branch: " + branch);
+        }
+        return commit;
+    }
+
+    /**
+     * Reads the file as it is in the given commit, so the payload matches
+     * the commit pair it is cached under regardless of the working tree.
+     */
+    private String readFile(Repository repo, ObjectId commitId, String path) throws IOException {
+        try (RevWalk walk = new RevWalk(repo)) {
+            RevCommit commit = walk.parseCommit(commitId);
+            try (TreeWalk treeWalk = TreeWalk.forPath(repo, path, commit.getTree())) {
+                if (treeWalk == null) {
+                    throw new IOException("File not found in " + commitId.name() + ": " + path);
+                }
+                return new String(repo.open(treeWalk.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private List<FileDiff> gitDiff(Repository repo, ObjectId oldCommit, ObjectId newCommit) throws IOException {
+        ObjectId oldTree = repo.resolve(oldCommit.name() + "^{tree}");
+        ObjectId newTree = repo.resolve(newCommit.name() + "^{tree}");
 
         List<FileDiff> results = new ArrayList<>();
 
@@ -138,7 +381,7 @@ public class GitService {
     }
 
 
-    private void collectChangedMethods(FileDiff diff, CompilationUnit cu, List<Map<String, Object>> codeBlocks) {
+    private void collectChangedMethods(FileDiff diff, CompilationUnit cu, List<CodeBlock> codeBlocks) {
         cu.findAll(MethodDeclaration.class).forEach(method -> {
             if (method.getRange().isEmpty()) {
                 return;
@@ -146,16 +389,13 @@ public class GitService {
             Range r = method.getRange().get();
 
             if (diff.parsed.touchesRange(r.begin.line, r.end.line)) {
-                codeBlocks.add(Map.of(
-                        "type", "method",
-                        "name", method.getNameAsString(),
-                        "code", method.toString()
-                ));
+                codeBlocks.add(new CodeBlock(diff.file, "method", method.getNameAsString(),
+                        ownerOf(method), method.toString()));
             }
         });
     }
 
-    private void collectChangedFields(FileDiff diff, CompilationUnit cu, List<Map<String, Object>> codeBlocks) {
+    private void collectChangedFields(FileDiff diff, CompilationUnit cu, List<CodeBlock> codeBlocks) {
         cu.findAll(FieldDeclaration.class).forEach(field -> {
             if (field.getRange().isEmpty()) {
                 return;
@@ -163,29 +403,23 @@ public class GitService {
             Range r = field.getRange().get();
 
             if (diff.parsed.touchesRange(r.begin.line, r.end.line)) {
-                codeBlocks.add(Map.of(
-                        "type", "field",
-                        "code", field.toString()
-                ));
+                codeBlocks.add(new CodeBlock(diff.file, "field", null, ownerOf(field), field.toString()));
             }
         });
     }
 
-    private void collectChangedImports(FileDiff diff, CompilationUnit cu, List<Map<String, Object>> codeBlocks) {
+    private void collectChangedImports(FileDiff diff, CompilationUnit cu, List<CodeBlock> codeBlocks) {
         cu.getImports().forEach(impt -> {
             if (impt.getRange().isEmpty()) return;
             Range r = impt.getRange().get();
 
             if (diff.parsed.touchesRange(r.begin.line, r.end.line)) {
-                codeBlocks.add(Map.of(
-                        "type", "import",
-                        "code", impt.toString()
-                ));
+                codeBlocks.add(new CodeBlock(diff.file, "import", null, null, impt.toString()));
             }
         });
     }
 
-    private void collectChangedClassAnnotations(FileDiff diff, CompilationUnit cu, List<Map<String, Object>> codeBlocks) {
+    private void collectChangedClassAnnotations(FileDiff diff, CompilationUnit cu, List<CodeBlock> codeBlocks) {
         cu.findAll(ClassOrInterfaceDeclaration.class).forEach(clazz -> {
             clazz.getAnnotations().forEach(anno -> {
                 if (anno.getRange().isEmpty()) {
@@ -194,35 +428,43 @@ public class GitService {
                 Range r = anno.getRange().get();
 
                 if (diff.parsed.touchesRange(r.begin.line, r.end.line)) {
-                    codeBlocks.add(Map.of(
-                            "type", "class-annotation",
-                            "code", anno.toString()
-                    ));
+                    codeBlocks.add(new CodeBlock(diff.file, "class-annotation", null,
+                            clazz.getNameAsString(), anno.toString()));
                 }
             });
         });
     }
 
-    private String prepareCodeForLLMReview(String repoPath, List<FileDiff> diffs) throws IOException {
-        List<Map<String, Object>> payload = new ArrayList<>();
+    private String ownerOf(Node node) {
+        return node.findAncestor(TypeDeclaration.class)
+                .map(type -> ((TypeDeclaration<?>) type).getNameAsString())
+                .orElse(null);
+    }
+
+    /**
+     * @param yieldKey set for pre-warming, checked between files to yield to reviews
+     */
+    private ReviewPayload prepareCodeForLLMReview(Repository repo, ObjectId newCommit, List<FileDiff> diffs,
+                                                  String yieldKey) throws IOException {
+        List<CodeBlock> allBlocks = new ArrayList<>();
         JavaParser parser = new JavaParser();
 
         for (FileDiff diff : diffs) {
-            String path = repoPath + File.separator + diff.file;
-
+            if (yieldKey != null) {
+                yieldToReviews(yieldKey);
+            }
             if (!diff.file.endsWith(".java")) {
                 log.info("Skipping non-Java file: {}", diff.file);
                 continue;
             }
 
-            File file = new File(path);
-            ParseResult<CompilationUnit> result = parser.parse(file);
+            ParseResult<CompilationUnit> result = parser.parse(readFile(repo, newCommit, diff.file));
             if (result.getResult().isEmpty()) {
-                throw new IOException("Failed to parse: " + path);
+                throw new IOException("Failed to parse: " + diff.file);
             }
 
             CompilationUnit cu = result.getResult().get();
-            List<Map<String, Object>> codeBlocks = new ArrayList<>();
+            List<CodeBlock> codeBlocks = new ArrayList<>();
 
             collectChangedMethods(diff, cu, codeBlocks);
             collectChangedFields(diff, cu, codeBlocks);
@@ -230,13 +472,13 @@ public class GitService {
             collectChangedClassAnnotations(diff, cu, codeBlocks);
 
             if (!codeBlocks.isEmpty()) {
-                payload.add(Map.of(FIELD_FILE, diff.file, FIELD_CODE, codeBlocks));
+                allBlocks.addAll(codeBlocks);
             } else {
                 log.info("Changes in '{}' are whitespace-only.", diff.file);
             }
         }
 
-        return OBJECT_MAPPER.writeValueAsString(payload);
+        return deduplicator.build(allBlocks);
     }
 
     @Value
@@ -1,10 +1,12 @@
 package com.matt.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
@@ -16,7 +18,11 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class GlmLLMService {
     private static final ObjectMapper MAPPER = new ObjectMapper();
-    private final RestTemplate restTemplate = new RestTemplate();
+    private static final int MAX_TOKENS = 2048;
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private final LlmCallScheduler scheduler;
+    private RestTemplate restTemplate;
 
     @Value("${glm.api.url:https://open.bigmodel.cn/api/paas/v4/chat/completions}")
     private String apiUrl;
@@ -27,10 +33,32 @@ public class GlmLLMService {
     @Value("${glm.model:glm-4.7}")
     private String model;
 
-    public String review(String structuredDiffPayload) {
+    @Value("${glm.scheduler.connect-timeout-ms:5000}")
+    private int connectTimeoutMs;
+
+    @Value("${glm.scheduler.read-timeout-ms:120000}")
+    private int readTimeoutMs;
+
+    /**
+     * Timeouts so a hung call fails and gives its scheduler slot back.
+     */
+    @PostConstruct
+    void init() {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(connectTimeoutMs);
+        requestFactory.setReadTimeout(readTimeoutMs);
+        restTemplate = new RestTemplate(requestFactory);
+    }
+
+    /**
+     * @param repo     used by the scheduler to share the quota fairly between repos
+     * @param priority {@link LlmCallScheduler.Priority#INTERACTIVE} when someone is waiting on the result
+     */
+    public String review(String repo, LlmCallScheduler.Priority priority, String structuredDiffPayload) {
         try {
             String prompt = buildUserPrompt(structuredDiffPayload);
             Map<String, Object> request = buildRequest(prompt);
+            long estimatedTokens = (systemPrompt().length() + prompt.length()) / CHARS_PER_TOKEN + MAX_TOKENS;
 
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_JSON);
@@ -38,13 +66,15 @@ public class GlmLLMService {
 
             HttpEntity<Map<String, Object>> entity = new HttpEntity<>(request, headers);
 
-            log.info("calling llm api");
-            ResponseEntity<String> resp = restTemplate.exchange(
-                    apiUrl,
-                    HttpMethod.POST,
-                    entity,
-                    String.class
-            );
+            ResponseEntity<String> resp = scheduler.call(repo, priority, estimatedTokens, () -> {
+                log.info("calling llm api");
+                return restTemplate.exchange(
+                        apiUrl,
+                        HttpMethod.POST,
+                        entity,
+                        String.class
+                );
+            });
 
             String result = extractAssistantContent(resp.getBody());
             log.info("LLM review result: {}", result);
@@ -58,7 +88,7 @@ public class GlmLLMService {
         return Map.of(
                 "model", model,
                 "temperature", 0.1,
-                "max_tokens", 2048,
+                "max_tokens", MAX_TOKENS,
                 "messages", List.of(
                         Map.of("role", "system", "content", systemPrompt()),
                         Map.of("role", "user", "content", userPrompt)
@@ -97,6 +127,7 @@ public class GlmLLMService {
             {
               "summary": string,
               "file": string,
+              "block": string,
               "type": "bug | security | performance | correctness | maintainability",
               "severity": "low | medium | high | critical",
               "location": string,
@@ -108,6 +139,7 @@ public class GlmLLMService {
 
         Rules:
         - Output must be valid JSON.
+        - "block" is the "id" of the code block the issue is about.
         - Do not include markdown, comments, or extra text.
         - If no issues exist, return:
 
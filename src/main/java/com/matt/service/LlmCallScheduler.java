@@ -0,0 +1,359 @@
+package com.matt.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide gate in front of the LLM endpoint.
+ *
+ * - Token buckets for requests per minute and estimated tokens per minute
+ * - AIMD concurrency limit: +1/limit on a fast success, halved on 429, x0.9 on a slow or timed out call
+ * - A 429 drains both buckets and pauses all calls for the provider's Retry-After
+ * - Waiting calls are ordered by priority, then by the repo's in-flight calls
+ *   (fair share across repos), then by estimated size (small MRs first).
+ *   A head only waiting for the buckets is pinned until granted, so a large
+ *   review is not overtaken by smaller ones taking the refilled budget.
+ *
+ * Callers block in {@link #call} until their turn, the call itself runs on the caller thread.
+ */
+@Slf4j
+@Service
+public class LlmCallScheduler {
+
+    public enum Priority {
+        INTERACTIVE,
+        BATCH
+    }
+
+    private enum Outcome {
+        SUCCESS,
+        RATE_LIMITED,
+        /** timeout or connection failure, the endpoint is likely overloaded */
+        UNAVAILABLE,
+        FAILED
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MAX_IDLE_WAIT_MS = 100;
+    /**
+     * Batch calls waiting longer than this are treated as interactive so they don't starve,
+     * as if they had arrived at promotion time.
+     */
+    private static final long PROMOTE_AFTER_MS = TimeUnit.SECONDS.toMillis(60);
+
+    @Value("${glm.scheduler.rpm:60}")
+    private int requestsPerMinute;
+
+    @Value("${glm.scheduler.tpm:200000}")
+    private int tokensPerMinute;
+
+    @Value("${glm.scheduler.max-concurrency:8}")
+    private int maxConcurrency;
+
+    @Value("${glm.scheduler.target-latency-ms:30000}")
+    private long targetLatencyMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private final List<Ticket> waiting = new ArrayList<>();
+    /** head that is only waiting for the buckets, kept as head until granted */
+    private Ticket pinnedHead;
+    private final Map<String, Integer> inFlightByRepo = new HashMap<>();
+    private long sequence;
+
+    private TokenBucket requestBucket;
+    private TokenBucket tokenBucket;
+    private double concurrencyLimit;
+    private int inFlight;
+    /** set from Retry-After, nothing is granted before this time */
+    private long pausedUntil;
+
+    private long completed;
+    private long failed;
+    private long throttled;
+    /** calls granted a slot at least once */
+    private long grantedCalls;
+    private long totalWaitMs;
+    private long maxWaitMs;
+
+    @PostConstruct
+    void init() {
+        requestBucket = new TokenBucket(requestsPerMinute);
+        tokenBucket = new TokenBucket(tokensPerMinute);
+        concurrencyLimit = Math.max(1, maxConcurrency / 2);
+    }
+
+    /**
+     * @param repo            used for fair sharing between repos
+     * @param estimatedTokens prompt + completion tokens, charged against the TPM bucket
+     */
+    public <T> T call(String repo, Priority priority, long estimatedTokens, Supplier<T> action) {
+        Ticket ticket = newTicket(repo, priority, estimatedTokens);
+        for (int attempt = 1; ; attempt++) {
+            acquire(ticket);
+            long start = System.currentTimeMillis();
+            Outcome outcome = Outcome.FAILED;
+            long retryAfterMs = 0;
+            try {
+                T result = action.get();
+                outcome = Outcome.SUCCESS;
+                return result;
+            } catch (HttpStatusCodeException e) {
+                if (e.getStatusCode().value() != HttpStatus.TOO_MANY_REQUESTS.value()) {
+                    throw e;
+                }
+                outcome = Outcome.RATE_LIMITED;
+                retryAfterMs = parseRetryAfter(e.getResponseHeaders());
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.warn("LLM call for {} rate limited, attempt {}/{}", repo, attempt, MAX_ATTEMPTS);
+            } catch (ResourceAccessException e) {
+                outcome = Outcome.UNAVAILABLE;
+                throw e;
+            } finally {
+                release(ticket, System.currentTimeMillis() - start, outcome, retryAfterMs);
+            }
+        }
+    }
+
+    private Ticket newTicket(String repo, Priority priority, long estimatedTokens) {
+        lock.lock();
+        try {
+            return new Ticket(repo, priority, Math.min(estimatedTokens, tokensPerMinute),
+                    System.currentTimeMillis(), sequence++);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retries reuse the ticket, so a throttled call keeps its place and its wait time.
+     */
+    private void acquire(Ticket ticket) {
+        lock.lock();
+        try {
+            long queuedAt = System.currentTimeMillis();
+            waiting.add(ticket);
+            try {
+                while (true) {
+                    long waitMs = MAX_IDLE_WAIT_MS;
+                    if (next() == ticket && inFlight < (int) concurrencyLimit) {
+                        long now = System.currentTimeMillis();
+                        waitMs = Math.max(pausedUntil - now,
+                                Math.max(requestBucket.waitMs(1, now), tokenBucket.waitMs(ticket.tokens, now)));
+                        if (waitMs <= 0) {
+                            requestBucket.take(1);
+                            tokenBucket.take(ticket.tokens);
+                            break;
+                        }
+                        pinnedHead = ticket;
+                    }
+                    changed.await(Math.min(waitMs, MAX_IDLE_WAIT_MS), TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for LLM slot", e);
+            } finally {
+                waiting.remove(ticket);
+                if (pinnedHead == ticket) {
+                    pinnedHead = null;
+                }
+                changed.signalAll();
+            }
+
+            inFlight++;
+            inFlightByRepo.merge(ticket.repo, 1, Integer::sum);
+            long waited = System.currentTimeMillis() - queuedAt;
+            ticket.waitedMs += waited;
+            if (++ticket.attempts == 1) {
+                grantedCalls++;
+            }
+            totalWaitMs += waited;
+            maxWaitMs = Math.max(maxWaitMs, ticket.waitedMs);
+            log.info("LLM slot granted to {} after {} ms (queue {}, in flight {}/{})",
+                    ticket.repo, ticket.waitedMs, waiting.size(), inFlight, (int) concurrencyLimit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Ticket ticket, long latencyMs, Outcome outcome, long retryAfterMs) {
+        lock.lock();
+        try {
+            inFlight--;
+            inFlightByRepo.computeIfPresent(ticket.repo, (k, v) -> v > 1 ? v - 1 : null);
+
+            if (outcome == Outcome.RATE_LIMITED) {
+                throttled++;
+                concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+                // provider says we are over quota whatever our buckets think, RPM or TPM
+                long now = System.currentTimeMillis();
+                requestBucket.drain(now);
+                tokenBucket.drain(now);
+                pausedUntil = Math.max(pausedUntil, now + retryAfterMs);
+            } else if (outcome == Outcome.UNAVAILABLE || latencyMs > targetLatencyMs) {
+                concurrencyLimit = Math.max(1, concurrencyLimit * 0.9);
+            } else if (outcome == Outcome.SUCCESS) {
+                concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+            }
+
+            if (outcome == Outcome.SUCCESS) {
+                completed++;
+            } else if (outcome != Outcome.RATE_LIMITED || ticket.attempts >= MAX_ATTEMPTS) {
+                // a 429 on the last attempt is rethrown, the call has failed
+                failed++;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retry-After is either delay-seconds or an HTTP date, 0 when absent or unreadable.
+     */
+    private long parseRetryAfter(HttpHeaders headers) {
+        String retryAfter = headers == null ? null : headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime until = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, until.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                log.warn("Unreadable Retry-After header: {}", retryAfter);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * The pinned head only gives way to a call of higher effective priority.
+     */
+    private Ticket next() {
+        long now = System.currentTimeMillis();
+        Ticket best = waiting.stream()
+                .min(Comparator.<Ticket, Priority>comparing(t -> t.effectivePriority(now))
+                        .thenComparingInt(t -> inFlightByRepo.getOrDefault(t.repo, 0))
+                        .thenComparingLong(t -> t.tokens)
+                        .thenComparingLong(Ticket::effectiveArrival)
+                        .thenComparing(t -> t.priority)
+                        .thenComparingLong(t -> t.seq))
+                .orElse(null);
+        if (pinnedHead != null
+                && (best == null || best.effectivePriority(now).compareTo(pinnedHead.effectivePriority(now)) >= 0)) {
+            return pinnedHead;
+        }
+        return best;
+    }
+
+    public Map<String, Object> stats() {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            long oldestWaitMs = waiting.stream().mapToLong(t -> now - t.enqueuedAt).max().orElse(0);
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("queueDepth", waiting.size());
+            stats.put("oldestWaitMs", oldestWaitMs);
+            stats.put("inFlight", inFlight);
+            stats.put("concurrencyLimit", (int) concurrencyLimit);
+            stats.put("inFlightByRepo", new HashMap<>(inFlightByRepo));
+            stats.put("completed", completed);
+            stats.put("failed", failed);
+            stats.put("throttled", throttled);
+            stats.put("avgWaitMs", grantedCalls == 0 ? 0 : totalWaitMs / grantedCalls);
+            stats.put("maxWaitMs", maxWaitMs);
+            stats.put("pausedForMs", Math.max(0, pausedUntil - now));
+            stats.put("availableRequests", (long) requestBucket.available(now));
+            stats.put("availableTokens", (long) tokenBucket.available(now));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Ticket {
+        final String repo;
+        final Priority priority;
+        final long tokens;
+        final long enqueuedAt;
+        final long seq;
+        /** queue time over all attempts */
+        long waitedMs;
+        int attempts;
+
+        Ticket(String repo, Priority priority, long tokens, long enqueuedAt, long seq) {
+            this.repo = repo;
+            this.priority = priority;
+            this.tokens = tokens;
+            this.enqueuedAt = enqueuedAt;
+            this.seq = seq;
+        }
+
+        Priority effectivePriority(long now) {
+            return now - enqueuedAt > PROMOTE_AFTER_MS ? Priority.INTERACTIVE : priority;
+        }
+
+        /** a promoted batch call ranks after interactive calls that arrived at its promotion time */
+        long effectiveArrival() {
+            return priority == Priority.BATCH ? enqueuedAt + PROMOTE_AFTER_MS : enqueuedAt;
+        }
+    }
+
+    /**
+     * Per-minute budget refilled continuously. Not thread safe, guarded by the scheduler lock.
+     */
+    private static class TokenBucket {
+        final double capacity;
+        final double refillPerMs;
+        double tokens;
+        long lastRefill;
+
+        TokenBucket(int perMinute) {
+            this.capacity = perMinute;
+            this.refillPerMs = perMinute / 60_000.0;
+            this.tokens = perMinute;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        double available(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerMs);
+            lastRefill = now;
+            return tokens;
+        }
+
+        long waitMs(double amount, long now) {
+            double missing = amount - available(now);
+            return missing <= 0 ? 0 : (long) Math.ceil(missing / refillPerMs);
+        }
+
+        void take(double amount) {
+            tokens -= amount;
+        }
+
+        void drain(long now) {
+            tokens = 0;
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.matt.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Pre-computes review payloads when a push / MR update arrives, so the
+ * later {@code GET /code-review} finds the diff and extraction ready.
+ *
+ * Runs on a single low-priority thread, {@link GitService#prewarm} pauses
+ * while real reviews are in progress so it never competes with traffic
+ * someone is waiting on.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PrewarmService {
+
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final GitService gitService;
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /** branch pair -> time of the latest push whose fetch has not completed yet */
+    private final Map<String, Long> unfetchedPushes = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(QUEUE_CAPACITY),
+            r -> {
+                Thread t = new Thread(r, "review-prewarm");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+
+    /**
+     * @return false if the same branch pair is already queued or the queue is full
+     */
+    public boolean enqueue(String repoPath, String targetBranch, String sourceBranch) {
+        String key = key(repoPath, targetBranch, sourceBranch);
+        unfetchedPushes.put(key, System.currentTimeMillis());
+        if (!pending.add(key)) {
+            log.info("Pre-warm already queued for {}", key);
+            return false;
+        }
+
+        try {
+            executor.execute(() -> run(key, repoPath, targetBranch, sourceBranch));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            log.warn("Pre-warm queue full, dropping {}", key);
+            return false;
+        }
+    }
+
+    /**
+     * A review of a pushed pair that pre-warming has not fetched yet must fetch
+     * itself, the origin refs it would look the cache up with are stale.
+     */
+    public boolean hasUnfetchedPush(String repoPath, String targetBranch, String sourceBranch) {
+        return unfetchedPushes.containsKey(key(repoPath, targetBranch, sourceBranch));
+    }
+
+    private String key(String repoPath, String targetBranch, String sourceBranch) {
+        return repoPath + ":" + targetBranch + ".." + sourceBranch;
+    }
+
+    private void run(String key, String repoPath, String targetBranch, String sourceBranch) {
+        // removed before the work starts so a push arriving meanwhile is queued again
+        pending.remove(key);
+        try {
+            long start = System.currentTimeMillis();
+            gitService.prewarm(repoPath, targetBranch, sourceBranch);
+            // pushes received after the fetch started stay unfetched
+            unfetchedPushes.computeIfPresent(key, (k, pushedAt) -> pushedAt <= start ? null : pushedAt);
+            log.info("Pre-warmed {} in {} ms", key, System.currentTimeMillis() - start);
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Pre-warm failed for {}", key, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,18 @@
+package com.matt.service;
+
+import lombok.Value;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What is sent to the LLM, plus the duplicate groups needed to fan its issues back out.
+ */
+@Value
+public class ReviewPayload {
+    /** [{"file": ..., "code": [{"id": ..., "type": ..., "code": ...}]}] */
+    String json;
+
+    /** block id -> every block sharing the fingerprint, the representative first */
+    Map<String, List<CodeBlockDeduplicator.CodeBlock>> groups;
+}